@@ -0,0 +1,51 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of wm4j.
+ *
+ * wm4j is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * wm4j is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with wm4j. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.ext;
+
+import java.io.IOException;
+import java.util.List;
+import com.johnstok.http.sync.Request;
+import com.johnstok.http.sync.Response;
+
+
+/**
+ * A handler that processes several HTTP exchanges in a single call.
+ *
+ * <p>The request at a given index corresponds to the response at the same
+ * index. Implementations must complete every response in the batch before
+ * returning.
+ *
+ * @see BatchingHandler
+ *
+ * @author Keith Webster Johnston.
+ */
+public interface BatchHandler {
+
+    /**
+     * Handle a batch of requests.
+     *
+     * @param requests  The requests in the batch, in arrival order.
+     * @param responses The responses for the requests, in the same order.
+     *
+     * @throws IOException If the batch cannot be processed.
+     */
+    void handle(List<Request> requests,
+                List<Response> responses) throws IOException;
+}
@@ -0,0 +1,212 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of wm4j.
+ *
+ * wm4j is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * wm4j is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with wm4j. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.ext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import com.johnstok.http.sync.Handler;
+import com.johnstok.http.sync.Request;
+import com.johnstok.http.sync.Response;
+
+
+/**
+ * A handler that coalesces concurrent requests into batches.
+ *
+ * <p>The first request to arrive opens a batch and waits for up to
+ * {@code maxDelay} milliseconds, or until {@code maxBatchSize} requests have
+ * joined, before passing the whole batch to a {@link BatchHandler} in a single
+ * call. Every caller is parked until its batch completes, so the server closes
+ * each response only after the batch handler has written it.
+ *
+ * <p>If the batch handler fails the failure is reported to every request in
+ * the batch.
+ *
+ * <p>Each parked request holds one of the server's worker threads, so
+ * {@code maxBatchSize} must not exceed the number of workers the server runs
+ * handlers on (see {@code SimpleDaemon}'s {@code workers} argument). A larger
+ * batch can never fill: every batch waits the full {@code maxDelay} and, while
+ * it does, no other request on the server is handled.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class BatchingHandler
+    implements
+        Handler {
+
+    private final BatchHandler _delegate;
+    private final int          _maxBatchSize;
+    private final long         _maxDelay;
+    private final Object       _lock = new Object();
+    private       Batch        _open;
+
+
+    /**
+     * Constructor.
+     *
+     * @param delegate     The handler that processes each batch.
+     * @param maxBatchSize The maximum number of requests in a batch; no more
+     *  than the server's worker thread count.
+     * @param maxDelay     The maximum time, in milliseconds, that the first
+     *  request in a batch waits for others to join.
+     */
+    public BatchingHandler(final BatchHandler delegate,
+                           final int maxBatchSize,
+                           final long maxDelay) {
+        if (null==delegate) {
+            throw new IllegalArgumentException("Delegate may not be null.");
+        }
+        if (maxBatchSize<1) {
+            throw new IllegalArgumentException("Batch size must be positive.");
+        }
+        if (maxDelay<0) {
+            throw new IllegalArgumentException("Delay may not be negative.");
+        }
+        _delegate = delegate;
+        _maxBatchSize = maxBatchSize;
+        _maxDelay = maxDelay;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void handle(final Request request,
+                       final Response response) throws IOException {
+        final Batch   batch;
+        final boolean leader;
+
+        synchronized (_lock) {
+            leader = (null==_open);
+            if (leader) {
+                _open = new Batch();
+            }
+            batch = _open;
+            batch.add(request, response);
+            if (batch.size()>=_maxBatchSize) {
+                _open = null;
+                _lock.notifyAll();
+            }
+        }
+
+        if (leader) {
+            awaitClose(batch);
+            batch.run(_delegate);
+        } else {
+            batch.await();
+        }
+        batch.rethrow();
+    }
+
+
+    private void awaitClose(final Batch batch) {
+        boolean interrupted = false;
+        synchronized (_lock) {
+            final long deadline = System.currentTimeMillis()+_maxDelay;
+            while (_open==batch) {
+                final long remaining = deadline-System.currentTimeMillis();
+                if (remaining<=0) {
+                    _open = null;
+                    break;
+                }
+                try {
+                    _lock.wait(remaining);
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                    _open = null; // Run what we have rather than strand the batch.
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * A group of exchanges processed together.
+     */
+    private static final class Batch {
+
+        private final List<Request>  _requests  = new ArrayList<Request>();
+        private final List<Response> _responses = new ArrayList<Response>();
+        private final CountDownLatch _done      = new CountDownLatch(1);
+        private       Throwable      _failure;
+
+
+        void add(final Request request, final Response response) {
+            _requests.add(request);
+            _responses.add(response);
+        }
+
+
+        int size() {
+            return _requests.size();
+        }
+
+
+        void run(final BatchHandler delegate) {
+            try {
+                delegate.handle(
+                    Collections.unmodifiableList(_requests),
+                    Collections.unmodifiableList(_responses));
+            } catch (final Throwable t) {
+                _failure = t;
+            } finally {
+                _done.countDown();
+            }
+        }
+
+
+        /*
+         * Waiting is uninterruptible: the response must stay open until the
+         * batch handler has finished writing it.
+         */
+        void await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    _done.await();
+                    break;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+
+        void rethrow() throws IOException {
+            if (null==_failure) {
+                return;
+            } else if (_failure instanceof IOException) {
+                throw (IOException) _failure;
+            } else if (_failure instanceof RuntimeException) {
+                throw (RuntimeException) _failure;
+            } else if (_failure instanceof Error) {
+                throw (Error) _failure;
+            }
+            throw new IOException("Batch failed: "+_failure);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of wm4j.
+ *
+ * wm4j is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * wm4j is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with wm4j. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.ext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import com.johnstok.http.sync.AbstractResponse;
+import com.johnstok.http.sync.Response;
+
+
+/**
+ * A HTTP response held in memory.
+ *
+ * <p>The status, headers and body written to this response can be replayed,
+ * any number of times, to another response. Header names are compared
+ * case-insensitively.
+ *
+ * @author Keith Webster Johnston.
+ */
+class BufferedResponse
+    extends
+        AbstractResponse {
+
+    private final Map<String, String>   _headers =
+        new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+    private final ByteArrayOutputStream _body = new ByteArrayOutputStream();
+
+    private int    _statusCode   = 200;
+    private String _reasonPhrase = "OK";
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void setHeader(final String name, final String value) {
+        _headers.put(name, value);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public String getHeader(final String name) {
+        return _headers.get(name);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public OutputStream getBody() throws IOException {
+        return _body;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void setStatus(final int statusCode, final String reasonPhrase) {
+        _statusCode = statusCode;
+        _reasonPhrase = reasonPhrase;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public int getStatusCode() {
+        return _statusCode;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public String getReasonPhrase() {
+        return _reasonPhrase;
+    }
+
+
+    /**
+     * Write the status, headers and body of this response to another.
+     *
+     * @param response The response to write to.
+     *
+     * @throws IOException If writing the body fails.
+     */
+    void replay(final Response response) throws IOException {
+        response.setStatus(_statusCode, _reasonPhrase);
+        for (final Map.Entry<String, String> header : _headers.entrySet()) {
+            response.setHeader(header.getKey(), header.getValue());
+        }
+        if (_body.size()>0) {
+            _body.writeTo(response.getBody());
+        }
+    }
+}
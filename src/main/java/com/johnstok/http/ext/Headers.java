@@ -0,0 +1,60 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of wm4j.
+ *
+ * wm4j is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * wm4j is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with wm4j. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.ext;
+
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Helpers for working with request headers.
+ *
+ * @author Keith Webster Johnston.
+ */
+final class Headers {
+
+    private Headers() { super(); }
+
+
+    /**
+     * Look up the values of a header.
+     *
+     * <p>Header names are case-insensitive but request implementations don't
+     * agree on how they are stored, so fall back to a case-insensitive scan.
+     *
+     * @param headers The headers to search.
+     * @param name    The name of the header.
+     *
+     * @return The header's values, or NULL if the header is absent.
+     */
+    static List<String> values(final Map<String, List<String>> headers,
+                               final String name) {
+        final List<String> values = headers.get(name);
+        if (null!=values) {
+            return values;
+        }
+        for (final Map.Entry<String, List<String>> h : headers.entrySet()) {
+            if (name.equalsIgnoreCase(h.getKey())) {
+                return h.getValue();
+            }
+        }
+        return null;
+    }
+}
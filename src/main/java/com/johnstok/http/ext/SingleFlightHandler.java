@@ -0,0 +1,230 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of wm4j.
+ *
+ * wm4j is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * wm4j is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with wm4j. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.ext;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import com.johnstok.http.sync.Handler;
+import com.johnstok.http.sync.Request;
+import com.johnstok.http.sync.Response;
+
+
+/**
+ * A handler that collapses concurrent identical GET requests into one.
+ *
+ * <p>Requests are considered identical when they share a method, request URI
+ * and the values of a configured set of headers. The first such request is
+ * passed to the delegate while the rest wait; the delegate's output is
+ * buffered and then replayed to every waiting request. Headers that vary the
+ * representation (e.g. {@code Accept-Encoding}) must be included in the key,
+ * otherwise one client's response may be served to another.
+ *
+ * <p>As with a shared cache, a request carrying credentials
+ * ({@code Authorization} or {@code Cookie}) is never collapsed unless every
+ * credential header it carries is part of the key; it is passed straight to
+ * the delegate instead.
+ *
+ * <p>A response carrying {@code Set-Cookie}, or a {@code Cache-Control}
+ * header of {@code private} or {@code no-store}, is specific to the request
+ * that produced it. It is returned only to that request; each waiter then
+ * runs the delegate for itself.
+ *
+ * <p>Requests using any other method are passed straight to the delegate.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class SingleFlightHandler
+    implements
+        Handler {
+
+    private static final String[] CREDENTIAL_HEADERS =
+        {"Authorization", "Cookie"};
+
+    private final Handler                       _delegate;
+    private final List<String>                  _keyHeaders;
+    private final boolean[]                     _credentialKeyed;
+    private final ConcurrentMap<String, Flight> _flights =
+        new ConcurrentHashMap<String, Flight>();
+
+
+    /**
+     * Constructor.
+     *
+     * @param delegate   The handler that computes responses.
+     * @param keyHeaders The names of request headers that form part of the key.
+     */
+    public SingleFlightHandler(final Handler delegate,
+                               final String... keyHeaders) {
+        if (null==delegate) {
+            throw new IllegalArgumentException("Delegate may not be null.");
+        }
+        _delegate = delegate;
+        _keyHeaders = Collections.unmodifiableList(Arrays.asList(keyHeaders));
+        _credentialKeyed = new boolean[CREDENTIAL_HEADERS.length];
+        for (int i=0; i<CREDENTIAL_HEADERS.length; i++) {
+            for (final String name : keyHeaders) {
+                if (CREDENTIAL_HEADERS[i].equalsIgnoreCase(name)) {
+                    _credentialKeyed[i] = true;
+                }
+            }
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void handle(final Request request,
+                       final Response response) throws IOException {
+        if (!"GET".equals(request.getMethod())
+            || hasUnkeyedCredentials(request)) {
+            _delegate.handle(request, response);
+            return;
+        }
+
+        final String key    = key(request);
+        final Flight flight = new Flight();
+        final Flight active = _flights.putIfAbsent(key, flight);
+
+        if (null==active) {
+            try {
+                flight.run(_delegate, request);
+            } finally {
+                _flights.remove(key, flight);
+            }
+            flight.replay(response);
+        } else {
+            active.await();
+            if (active.isShareable()) {
+                active.replay(response);
+            } else {
+                _delegate.handle(request, response);
+            }
+        }
+    }
+
+
+    private boolean hasUnkeyedCredentials(final Request request) {
+        final Map<String, List<String>> headers = request.getHeaders();
+        for (int i=0; i<CREDENTIAL_HEADERS.length; i++) {
+            if (!_credentialKeyed[i]
+                && null!=Headers.values(headers, CREDENTIAL_HEADERS[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private String key(final Request request) {
+        final StringBuilder key = new StringBuilder();
+        key.append(request.getMethod()).append(' ');
+        key.append(request.getRequestUri());
+
+        if (!_keyHeaders.isEmpty()) {
+            final Map<String, List<String>> headers = request.getHeaders();
+            for (final String name : _keyHeaders) {
+                key.append('\n').append(name).append(':');
+                final List<String> values = Headers.values(headers, name);
+                if (null!=values) {
+                    key.append(values);
+                }
+            }
+        }
+        return key.toString();
+    }
+
+
+    /**
+     * A single in-progress invocation of the delegate.
+     */
+    private static final class Flight {
+
+        private final CountDownLatch   _done     = new CountDownLatch(1);
+        private final BufferedResponse _response = new BufferedResponse();
+        private       Throwable        _failure;
+
+
+        void run(final Handler delegate, final Request request) {
+            try {
+                delegate.handle(request, _response);
+            } catch (final Throwable t) {
+                _failure = t;
+            } finally {
+                _done.countDown();
+            }
+        }
+
+
+        void await() throws IOException {
+            try {
+                _done.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for response.");
+            }
+        }
+
+
+        /*
+         * Failures are shared so that waiters don't retry a failing backend.
+         */
+        boolean isShareable() {
+            if (null!=_failure) {
+                return true;
+            }
+            if (null!=_response.getHeader("Set-Cookie")) {
+                return false;
+            }
+            final String cacheControl = _response.getHeader("Cache-Control");
+            if (null!=cacheControl) {
+                for (final String directive : cacheControl.split(",")) {
+                    final String d =
+                        directive.trim().toLowerCase(Locale.ENGLISH);
+                    if (d.startsWith("private") || d.equals("no-store")) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+
+        void replay(final Response response) throws IOException {
+            if (null==_failure) {
+                _response.replay(response);
+            } else if (_failure instanceof IOException) {
+                throw (IOException) _failure;
+            } else if (_failure instanceof RuntimeException) {
+                throw (RuntimeException) _failure;
+            } else if (_failure instanceof Error) {
+                throw (Error) _failure;
+            } else {
+                throw new IOException("Request failed: "+_failure);
+            }
+        }
+    }
+}
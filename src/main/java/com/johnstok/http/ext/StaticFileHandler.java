@@ -0,0 +1,704 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of wm4j.
+ *
+ * wm4j is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * wm4j is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with wm4j. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.ext;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.johnstok.http.sync.Handler;
+import com.johnstok.http.sync.Request;
+import com.johnstok.http.sync.Response;
+
+
+/**
+ * A handler that serves files from a directory.
+ *
+ * <p>Open files are kept in a bounded, least-recently-used cache. Files no
+ * larger than {@code maxMappedBytes} are memory mapped and served from the
+ * mapping; larger files are transferred from their open channel. Either way
+ * the body is written through {@link Response#getBody()}, so the cache saves
+ * opening and reading the file, not the copy into the response. Each cached
+ * file's ETag is computed once, when it is loaded.
+ *
+ * <p>If a client accepts {@code br} or {@code gzip} encoding and a
+ * pre-compressed sibling of the requested file exists (e.g.
+ * {@code app.js.br}, {@code app.js.gz}) the sibling is served instead.
+ *
+ * <p>Cache entries are invalidated by a {@link WatchService} when the files
+ * they were loaded from change. Because the watcher is asynchronous, each
+ * request also checks that the file's size still matches the cached length
+ * and reloads it if not, so an in-place rewrite is never served with a stale
+ * {@code Content-Length} or read past the end of a truncated mapping. Call
+ * {@link #close()} to stop watching and release all cached files.
+ *
+ * <p>{@code maxEntries} bounds open file descriptors, not mapped memory:
+ * evicting an entry closes its channel, but a mapping is only released when
+ * the garbage collector reclaims its buffer.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class StaticFileHandler
+    implements
+        Handler, Closeable {
+
+    private static final int MAX_LOAD_ATTEMPTS = 3;
+
+    private static final String[][] ENCODINGS = {
+        {"br",   ".br"},                                           //$NON-NLS-1$
+        {"gzip", ".gz"},                                           //$NON-NLS-1$
+    };
+
+    private final Path                _root;
+    private final int                 _maxEntries;
+    private final long                _maxMappedBytes;
+    private final Map<Path, Resource> _cache;
+    private final Map<Path, Loading>  _loading = new HashMap<Path, Loading>();
+    private final WatchService        _watcher;
+    private final Set<Path>           _watched = new HashSet<Path>();
+    private final Thread              _watchThread;
+
+
+    /**
+     * Constructor.
+     *
+     * @param root           The directory to serve files from.
+     * @param maxEntries     The maximum number of files to keep open.
+     * @param maxMappedBytes The size of the largest file that will be memory
+     *  mapped.
+     *
+     * @throws IOException If the root directory cannot be resolved or watched.
+     */
+    public StaticFileHandler(final Path root,
+                             final int maxEntries,
+                             final long maxMappedBytes) throws IOException {
+        this(root, maxEntries, maxMappedBytes, true);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * <p>With {@code watch} false, changes are only noticed by the
+     * per-request size check; used to test that check in isolation.
+     *
+     * @param root           The directory to serve files from.
+     * @param maxEntries     The maximum number of files to keep open.
+     * @param maxMappedBytes The size of the largest file that will be memory
+     *  mapped.
+     * @param watch          Whether to process file system change events.
+     *
+     * @throws IOException If the root directory cannot be resolved or watched.
+     */
+    StaticFileHandler(final Path root,
+                      final int maxEntries,
+                      final long maxMappedBytes,
+                      final boolean watch) throws IOException {
+        if (null==root) {
+            throw new IllegalArgumentException("Root may not be null.");
+        }
+        if (maxEntries<1) {
+            throw new IllegalArgumentException("Cache size must be positive.");
+        }
+        _root = root.toRealPath();
+        if (!Files.isDirectory(_root)) {
+            throw new IllegalArgumentException("Not a directory: "+_root);
+        }
+        _maxEntries = maxEntries;
+        _maxMappedBytes = Math.min(maxMappedBytes, Integer.MAX_VALUE);
+        _cache = new LinkedHashMap<Path, Resource>(16, 0.75f, true);
+        _watcher = _root.getFileSystem().newWatchService();
+        _watchThread = new Thread(new Runnable() {
+            @Override public void run() { watch(); }
+        }, "static-file-watcher");                                //$NON-NLS-1$
+        _watchThread.setDaemon(true);
+        if (watch) {
+            _watchThread.start();
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void handle(final Request request,
+                       final Response response) throws IOException {
+        final String method = request.getMethod();
+        final boolean head  = "HEAD".equals(method);
+        if (!head && !"GET".equals(method)) {
+            response.setHeader("Allow", "GET, HEAD");
+            response.setStatus(405, "Method Not Allowed");
+            return;
+        }
+
+        final Path path = resolve(request.getRequestUri());
+        if (null==path) {
+            response.setStatus(404, "Not Found");
+            return;
+        }
+
+        final List<String> acceptEncoding =
+            Headers.values(request.getHeaders(), "Accept-Encoding");
+        Resource resource = acquire(path);
+        if (null==resource) {
+            response.setStatus(404, "Not Found");
+            return;
+        }
+        Representation rep = resource.select(acceptEncoding);
+        if (rep.isStale()) {
+            // Rewritten in place and the watcher hasn't caught up yet.
+            discard(path, resource);
+            release(resource);
+            resource = acquire(path);
+            if (null==resource) {
+                response.setStatus(404, "Not Found");
+                return;
+            }
+            rep = resource.select(acceptEncoding);
+        }
+
+        try {
+            response.setHeader("Content-Type", resource._contentType);
+            response.setHeader("ETag", rep._etag);
+            if (resource.hasVariants()) {
+                response.setHeader("Vary", "Accept-Encoding");
+            }
+            if (null!=rep._encoding) {
+                response.setHeader("Content-Encoding", rep._encoding);
+            }
+
+            if (matches(
+                    Headers.values(request.getHeaders(), "If-None-Match"),
+                    rep._etag)) {
+                response.setStatus(304, "Not Modified");
+                return;
+            }
+
+            response.setHeader("Content-Length", String.valueOf(rep._length));
+            response.setStatus(200, "OK");
+            if (!head) {
+                rep.writeTo(Channels.newChannel(response.getBody()));
+            }
+
+        } finally {
+            release(resource);
+        }
+    }
+
+
+    /**
+     * Stop watching for changes and release all cached files.
+     *
+     * @throws IOException If the watch service cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        _watcher.close();
+        synchronized (_cache) {
+            for (final Resource resource : _cache.values()) {
+                evict(resource);
+            }
+            _cache.clear();
+        }
+    }
+
+
+    private Path resolve(final String requestUri) {
+        String uriPath = requestUri;
+        final int query = uriPath.indexOf('?');
+        if (query>=0) {
+            uriPath = uriPath.substring(0, query);
+        }
+        try {
+            // URLDecoder implements form decoding; a '+' in a path is literal.
+            uriPath =
+                URLDecoder.decode(uriPath.replace("+", "%2B"), "UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
+        while (uriPath.startsWith("/")) {
+            uriPath = uriPath.substring(1);
+        }
+
+        try {
+            final Path path = _root.resolve(uriPath).normalize();
+            return (path.startsWith(_root)) ? path : null;
+        } catch (final InvalidPathException e) {
+            return null;
+        }
+    }
+
+
+    /*
+     * Loading happens outside the cache lock, so a file can change between
+     * being opened and being cached. invalidate() bumps the generation of
+     * in-progress loads; a load that sees its generation move is retried,
+     * and the last attempt is served without being cached.
+     */
+    private Resource acquire(final Path path) throws IOException {
+        for (int attempt=1; true; attempt++) {
+            final Loading loading;
+            final long    generation;
+            synchronized (_cache) {
+                final Resource cached = _cache.get(path);
+                if (null!=cached) {
+                    cached._refs++;
+                    return cached;
+                }
+                loading = loading(path);
+                generation = loading._generation;
+            }
+
+            Resource loaded = null;
+            try {
+                loaded = load(path);
+            } finally {
+                if (null==loaded) {
+                    synchronized (_cache) {
+                        loaded(path, loading);
+                    }
+                }
+            }
+            if (null==loaded) {
+                return null;
+            }
+
+            synchronized (_cache) {
+                loaded(path, loading);
+                if (generation!=loading._generation) {
+                    if (attempt<MAX_LOAD_ATTEMPTS) {
+                        loaded._evicted = true;
+                        loaded.close();
+                        continue;
+                    }
+                    loaded._evicted = true; // Closed when released.
+                    loaded._refs++;
+                    return loaded;
+                }
+
+                final Resource raced = _cache.get(path);
+                if (null!=raced) {
+                    raced._refs++;
+                    loaded._evicted = true;
+                    loaded.close();
+                    return raced;
+                }
+                _cache.put(path, loaded);
+                loaded._refs++;
+                trim();
+                return loaded;
+            }
+        }
+    }
+
+
+    private Loading loading(final Path path) {
+        Loading loading = _loading.get(path);
+        if (null==loading) {
+            loading = new Loading();
+            _loading.put(path, loading);
+        }
+        loading._loaders++;
+        return loading;
+    }
+
+
+    private void loaded(final Path path, final Loading loading) {
+        if (0==--loading._loaders) {
+            _loading.remove(path);
+        }
+    }
+
+
+    private void discard(final Path path, final Resource resource) {
+        synchronized (_cache) {
+            if (_cache.get(path)==resource) {
+                _cache.remove(path);
+                evict(resource);
+            }
+        }
+    }
+
+
+    private void release(final Resource resource) {
+        synchronized (_cache) {
+            resource._refs--;
+            if (resource._evicted && 0==resource._refs) {
+                resource.close();
+            }
+        }
+    }
+
+
+    private void trim() {
+        final Iterator<Resource> i = _cache.values().iterator();
+        while (_cache.size()>_maxEntries && i.hasNext()) {
+            final Resource eldest = i.next();
+            i.remove();
+            evict(eldest);
+        }
+    }
+
+
+    private void evict(final Resource resource) {
+        resource._evicted = true;
+        if (0==resource._refs) {
+            resource.close();
+        }
+    }
+
+
+    private Resource load(final Path path) throws IOException {
+        if (!Files.isRegularFile(path)
+            || !path.toRealPath().startsWith(_root)) {
+            return null;
+        }
+        watch(path.getParent());
+
+        final Representation identity = open(path, null);
+        if (null==identity) {
+            return null;
+        }
+        final List<Representation> variants = new ArrayList<Representation>();
+        for (final String[] encoding : ENCODINGS) {
+            final Path sibling =
+                path.resolveSibling(path.getFileName()+encoding[1]);
+            if (Files.isRegularFile(sibling)
+                && sibling.toRealPath().startsWith(_root)) {
+                final Representation variant = open(sibling, encoding[0]);
+                if (null!=variant) {
+                    variants.add(variant);
+                }
+            }
+        }
+
+        String contentType =
+            URLConnection.getFileNameMap().getContentTypeFor(
+                path.getFileName().toString());
+        if (null==contentType) {
+            contentType = "application/octet-stream";
+        }
+        return new Resource(contentType, identity, variants);
+    }
+
+
+    private Representation open(final Path path,
+                                final String encoding) throws IOException {
+        final FileChannel channel;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (final IOException e) {
+            return null; // Removed or unreadable; treat as absent.
+        }
+        try {
+            final long length       = channel.size();
+            final long lastModified = Files.getLastModifiedTime(path).toMillis();
+            final MappedByteBuffer buffer =
+                (length<=_maxMappedBytes)
+                    ? channel.map(FileChannel.MapMode.READ_ONLY, 0, length)
+                    : null;
+            final String etag =
+                "\""
+                + Long.toHexString(lastModified) + "-"
+                + Long.toHexString(length)
+                + ((null==encoding) ? "" : "-"+encoding)
+                + "\"";
+            return new Representation(encoding, etag, length, channel, buffer);
+
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    private void watch(final Path directory) throws IOException {
+        synchronized (_watched) {
+            if (_watched.add(directory)) {
+                directory.register(
+                    _watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        }
+    }
+
+
+    private void watch() {
+        try {
+            while (true) {
+                final WatchKey key       = _watcher.take();
+                final Path     directory = (Path) key.watchable();
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    if (StandardWatchEventKinds.OVERFLOW==event.kind()) {
+                        invalidateAll();
+                    } else {
+                        invalidate(directory.resolve((Path) event.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    synchronized (_watched) {
+                        _watched.remove(directory);
+                    }
+                    invalidateAll();
+                }
+            }
+        } catch (final ClosedWatchServiceException e) {
+            return; // Handler closed.
+        } catch (final InterruptedException e) {
+            return;
+        }
+    }
+
+
+    private void invalidate(final Path changed) {
+        // A change to a compressed sibling invalidates the file it encodes.
+        Path base = changed;
+        final String name = changed.getFileName().toString();
+        for (final String[] encoding : ENCODINGS) {
+            if (name.endsWith(encoding[1])) {
+                base = changed.resolveSibling(
+                    name.substring(0, name.length()-encoding[1].length()));
+            }
+        }
+        synchronized (_cache) {
+            for (final Path path : new Path[] {changed, base}) {
+                final Resource resource = _cache.remove(path);
+                if (null!=resource) {
+                    evict(resource);
+                }
+                final Loading loading = _loading.get(path);
+                if (null!=loading) {
+                    loading._generation++;
+                }
+            }
+        }
+    }
+
+
+    private void invalidateAll() {
+        synchronized (_cache) {
+            for (final Resource resource : _cache.values()) {
+                evict(resource);
+            }
+            _cache.clear();
+            for (final Loading loading : _loading.values()) {
+                loading._generation++;
+            }
+        }
+    }
+
+
+    private static boolean matches(final List<String> ifNoneMatch,
+                                   final String etag) {
+        if (null==ifNoneMatch) {
+            return false;
+        }
+        for (final String value : ifNoneMatch) {
+            for (final String candidate : value.split(",")) {
+                final String tag = candidate.trim();
+                if ("*".equals(tag) || etag.equals(tag)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    private static boolean accepts(final List<String> acceptEncoding,
+                                   final String coding) {
+        if (null==acceptEncoding) {
+            return false;
+        }
+        for (final String value : acceptEncoding) {
+            for (final String element : value.split(",")) {
+                final String[] parts = element.split(";");
+                if (!coding.equalsIgnoreCase(parts[0].trim())) {
+                    continue;
+                }
+                for (int i=1; i<parts.length; i++) {
+                    final String param = parts[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            return Double.parseDouble(param.substring(2))>0;
+                        } catch (final NumberFormatException e) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * The loads of a path currently in progress.
+     */
+    private static final class Loading {
+
+        int  _loaders;
+        long _generation;
+    }
+
+
+    /**
+     * A cached file and its pre-compressed variants.
+     */
+    private static final class Resource {
+
+        final String               _contentType;
+        final Representation       _identity;
+        final List<Representation> _variants;
+        int                        _refs;
+        boolean                    _evicted;
+
+
+        Resource(final String contentType,
+                 final Representation identity,
+                 final List<Representation> variants) {
+            _contentType = contentType;
+            _identity = identity;
+            _variants = variants;
+        }
+
+
+        boolean hasVariants() {
+            return !_variants.isEmpty();
+        }
+
+
+        Representation select(final List<String> acceptEncoding) {
+            for (final Representation variant : _variants) {
+                if (accepts(acceptEncoding, variant._encoding)) {
+                    return variant;
+                }
+            }
+            return _identity;
+        }
+
+
+        void close() {
+            _identity.close();
+            for (final Representation variant : _variants) {
+                variant.close();
+            }
+        }
+    }
+
+
+    /**
+     * A single encoding of a cached file.
+     */
+    private static final class Representation {
+
+        final String           _encoding;
+        final String           _etag;
+        final long             _length;
+        final FileChannel      _channel;
+        final MappedByteBuffer _buffer;
+
+
+        Representation(final String encoding,
+                       final String etag,
+                       final long length,
+                       final FileChannel channel,
+                       final MappedByteBuffer buffer) {
+            _encoding = encoding;
+            _etag = etag;
+            _length = length;
+            _channel = channel;
+            _buffer = buffer;
+        }
+
+
+        /*
+         * Compares the open file's size, so catches in-place rewrites but
+         * not a rename over the path (the watcher handles those).
+         */
+        boolean isStale() {
+            try {
+                return _channel.size()!=_length;
+            } catch (final IOException e) {
+                return true;
+            }
+        }
+
+
+        void writeTo(final WritableByteChannel target) throws IOException {
+            if (isStale()) {
+                // Reading a truncated mapping faults; fail the request instead.
+                throw new IOException("File changed while sending.");
+            }
+            if (null!=_buffer) {
+                final ByteBuffer body = _buffer.duplicate();
+                while (body.hasRemaining()) {
+                    target.write(body);
+                }
+            } else {
+                long position = 0;
+                while (position<_length) {
+                    final long sent =
+                        _channel.transferTo(position, _length-position, target);
+                    if (0==sent && position>=_channel.size()) {
+                        throw new IOException("File truncated while sending.");
+                    }
+                    position += sent;
+                }
+            }
+        }
+
+
+        void close() {
+            try {
+                _channel.close();
+            } catch (final IOException e) {
+                e.printStackTrace(); // FIXME: Log.
+            }
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of wm4j.
+ *
+ * wm4j is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * wm4j is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with wm4j. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.simple;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.simpleframework.transport.Server;
+import org.simpleframework.transport.Socket;
+
+
+/**
+ * A Simple {@link Server} that enforces {@link ConnectionLimits}.
+ *
+ * <p>Connections over the global or per-address limit are closed as soon as
+ * they are accepted, before any bytes are read. Timeouts are enforced by a
+ * background sweep that closes the channels of connections that have
+ * overstayed; Simple discards them on its next read.
+ *
+ * <p>Simple doesn't report when it closes a connection, so the sweep also
+ * releases the slots of closed connections. A rejected connection never
+ * triggers a scan of all connections: only the (bounded) connections from the
+ * same address are re-checked, and a connection freed by Simple becomes
+ * available to other addresses within one sweep interval.
+ *
+ * <p>Connections are identified by their remote socket address, which is
+ * also what {@link org.simpleframework.http.Request#getClientAddress()}
+ * reports, so requests can be matched to the connection that carried them.
+ *
+ * @author Keith Webster Johnston.
+ */
+class ConnectionGuard
+    implements
+        Server {
+
+    private static final long MAX_CAP_SWEEP_INTERVAL = 250;
+
+    private final Server                                _delegate;
+    private final ConnectionLimits                      _limits;
+    private final ConcurrentMap<SocketAddress, Tracked> _connections =
+        new ConcurrentHashMap<SocketAddress, Tracked>();
+    private final Map<InetAddress, List<Tracked>>       _byAddress =
+        new HashMap<InetAddress, List<Tracked>>();
+    private       int                                   _open;
+    private final ScheduledExecutorService              _sweeper;
+
+
+    /**
+     * Constructor.
+     *
+     * @param delegate The server that processes accepted connections.
+     * @param limits   The limits to enforce.
+     */
+    ConnectionGuard(final Server delegate, final ConnectionLimits limits) {
+        _delegate = delegate;
+        _limits = limits;
+        _sweeper = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "connection-sweeper");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        final long interval = sweepInterval(limits);
+        _sweeper.scheduleWithFixedDelay(
+            new Runnable() {
+                @Override public void run() { sweep(); }
+            },
+            interval,
+            interval,
+            TimeUnit.MILLISECONDS);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void process(final Socket socket) throws IOException {
+        final SocketChannel channel = socket.getChannel();
+        final SocketAddress remote  =
+            channel.socket().getRemoteSocketAddress();
+        if (!(remote instanceof InetSocketAddress)) {
+            channel.close(); // Already disconnected.
+            return;
+        }
+
+        final Tracked tracked =
+            new Tracked(channel, (InetSocketAddress) remote);
+        if (!admit(tracked)) {
+            channel.close();
+            return;
+        }
+        _delegate.process(socket);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void stop() throws IOException {
+        _sweeper.shutdownNow();
+        _delegate.stop();
+    }
+
+
+    /**
+     * Record the start of a request.
+     *
+     * @param client The client address reported by the request.
+     *
+     * @return The connection carrying the request, or NULL if it is unknown.
+     */
+    Tracked requestStarted(final InetSocketAddress client) {
+        final Tracked tracked = _connections.get(client);
+        if (null!=tracked) {
+            tracked.started();
+        }
+        return tracked;
+    }
+
+
+    /**
+     * Determine whether a request is the last allowed on its connection.
+     *
+     * @param tracked The connection carrying the request; may be NULL.
+     *
+     * @return True if the connection should close after this response.
+     */
+    boolean isLastRequest(final Tracked tracked) {
+        final int max = _limits.getMaxRequestsPerConnection();
+        return null!=tracked && max>0 && tracked._requests>=max;
+    }
+
+
+    /**
+     * Record the end of a request.
+     *
+     * @param tracked The connection carrying the request; may be NULL.
+     */
+    void requestFinished(final Tracked tracked) {
+        if (null!=tracked) {
+            tracked.finished();
+        }
+    }
+
+
+    /*
+     * Runs on Simple's accept thread: must not scan all connections.
+     */
+    private boolean admit(final Tracked tracked) {
+        final InetAddress address = tracked._remote.getAddress();
+        final int maxTotal        = _limits.getMaxConnections();
+        final int maxPerAddress   = _limits.getMaxConnectionsPerAddress();
+
+        synchronized (_byAddress) {
+            List<Tracked> peers = _byAddress.get(address);
+            if (maxPerAddress>0
+                && null!=peers
+                && peers.size()>=maxPerAddress) {
+                retireClosed(peers); // At most maxPerAddress checks.
+                peers = _byAddress.get(address);
+                if (null!=peers && peers.size()>=maxPerAddress) {
+                    return false;
+                }
+            }
+            if (maxTotal>0 && _open>=maxTotal) {
+                return false;
+            }
+
+            if (null==peers) {
+                peers = new ArrayList<Tracked>();
+                _byAddress.put(address, peers);
+            }
+            peers.add(tracked);
+            _open++;
+            _connections.put(tracked._remote, tracked);
+            return true;
+        }
+    }
+
+
+    private void retireClosed(final List<Tracked> peers) {
+        for (final Tracked peer : new ArrayList<Tracked>(peers)) {
+            if (!peer._channel.isOpen()) {
+                retire(peer);
+            }
+        }
+    }
+
+
+    private void retire(final Tracked tracked) {
+        synchronized (_byAddress) {
+            if (!_connections.remove(tracked._remote, tracked)) {
+                return; // Already retired.
+            }
+            _open--;
+            final InetAddress   address = tracked._remote.getAddress();
+            final List<Tracked> peers   = _byAddress.get(address);
+            peers.remove(tracked);
+            if (peers.isEmpty()) {
+                _byAddress.remove(address);
+            }
+        }
+    }
+
+
+    private void sweep() {
+        final long now = System.currentTimeMillis();
+        for (final Tracked tracked : _connections.values()) {
+            if (tracked._channel.isOpen()) {
+                if (!tracked.isExpired(_limits, now)) {
+                    continue;
+                }
+                try {
+                    tracked._channel.close();
+                } catch (final IOException e) {
+                    e.printStackTrace(); // FIXME: Log.
+                }
+            }
+            retire(tracked);
+        }
+    }
+
+
+    private static long sweepInterval(final ConnectionLimits limits) {
+        long interval = 1000;
+        for (final long timeout : new long[] {limits.getHeaderTimeout(),
+                                              limits.getIdleTimeout()}) {
+            if (timeout>0) {
+                interval = Math.min(interval, Math.max(50, timeout/4));
+            }
+        }
+        if (limits.getMaxConnections()>0
+            || limits.getMaxConnectionsPerAddress()>0) {
+            interval = Math.min(interval, MAX_CAP_SWEEP_INTERVAL);
+        }
+        return interval;
+    }
+
+
+    /**
+     * The state of an open connection.
+     */
+    static final class Tracked {
+
+        final SocketChannel     _channel;
+        final InetSocketAddress _remote;
+        final long              _accepted = System.currentTimeMillis();
+        volatile long           _lastFinished = _accepted;
+        volatile int            _requests;
+        volatile boolean        _active;
+
+
+        Tracked(final SocketChannel channel, final InetSocketAddress remote) {
+            _channel = channel;
+            _remote = remote;
+        }
+
+
+        /*
+         * _active is set first: the sweeper reads _active before _requests,
+         * so it never sees a started request as an idle connection.
+         */
+        void started() {
+            _active = true;
+            _requests++; // Requests on a connection are sequential.
+        }
+
+
+        void finished() {
+            _lastFinished = System.currentTimeMillis(); // Before _active.
+            _active = false;
+        }
+
+
+        /*
+         * Simple dispatches a request only once it has arrived in full and a
+         * worker is free, so the time until dispatch covers headers, body and
+         * queueing; see ConnectionLimits.
+         */
+        boolean isExpired(final ConnectionLimits limits, final long now) {
+            if (_active) {
+                return false;
+            } else if (0==_requests) {
+                return limits.getHeaderTimeout()>0
+                    && now-_accepted>limits.getHeaderTimeout();
+            }
+            return limits.getIdleTimeout()>0
+                && now-_lastFinished>limits.getIdleTimeout();
+        }
+    }
+}
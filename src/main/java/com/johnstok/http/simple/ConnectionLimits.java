@@ -0,0 +1,177 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of wm4j.
+ *
+ * wm4j is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * wm4j is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with wm4j. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.simple;
+
+
+/**
+ * Limits applied to the connections accepted by a {@link SimpleDaemon}.
+ *
+ * <p>Timeouts are in milliseconds. A value of zero disables the corresponding
+ * limit; all limits are disabled by default.
+ *
+ * <p>Simple reads a request in full, body included, before dispatching it, and
+ * doesn't report when bytes arrive. The header and idle timeouts are therefore
+ * measured up to the moment a request reaches a worker thread, which includes
+ * both the time taken to upload the body and any time the request spends
+ * queued while every worker is busy (e.g. parked by a batching handler).
+ * Tight values that defeat slow clients will also reset legitimate large
+ * uploads and well-behaved clients on a saturated server; size them for the
+ * largest expected request at the slowest acceptable rate, plus queueing.
+ * There is no separate body timeout because the body has already arrived by
+ * the time a handler can read it.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class ConnectionLimits {
+
+    private long _headerTimeout;
+    private long _idleTimeout;
+    private int  _maxRequestsPerConnection;
+    private int  _maxConnections;
+    private int  _maxConnectionsPerAddress;
+
+
+    /**
+     * Get the time allowed between accepting a connection and dispatching its
+     * first request to a worker thread.
+     *
+     * @return The timeout in milliseconds.
+     */
+    public long getHeaderTimeout() { return _headerTimeout; }
+
+
+    /**
+     * Set the time allowed between accepting a connection and dispatching its
+     * first request to a worker thread.
+     *
+     * <p>This includes the request body's upload time and time queued for a
+     * worker; see the class description before choosing a small value.
+     *
+     * @param headerTimeout The timeout in milliseconds.
+     *
+     * @return This object.
+     */
+    public ConnectionLimits setHeaderTimeout(final long headerTimeout) {
+        _headerTimeout = nonNegative(headerTimeout);
+        return this;
+    }
+
+
+    /**
+     * Get the time a connection may stay open between requests.
+     *
+     * <p>This also bounds the time taken to receive, and queue for a worker,
+     * every request after the first.
+     *
+     * @return The timeout in milliseconds.
+     */
+    public long getIdleTimeout() { return _idleTimeout; }
+
+
+    /**
+     * Set the time a connection may stay open between requests.
+     *
+     * @param idleTimeout The timeout in milliseconds.
+     *
+     * @return This object.
+     */
+    public ConnectionLimits setIdleTimeout(final long idleTimeout) {
+        _idleTimeout = nonNegative(idleTimeout);
+        return this;
+    }
+
+
+    /**
+     * Get the number of requests served on a connection before it is closed.
+     *
+     * @return The maximum number of requests.
+     */
+    public int getMaxRequestsPerConnection() {
+        return _maxRequestsPerConnection;
+    }
+
+
+    /**
+     * Set the number of requests served on a connection before it is closed.
+     *
+     * @param maxRequests The maximum number of requests.
+     *
+     * @return This object.
+     */
+    public ConnectionLimits setMaxRequestsPerConnection(final int maxRequests) {
+        _maxRequestsPerConnection = (int) nonNegative(maxRequests);
+        return this;
+    }
+
+
+    /**
+     * Get the number of connections that may be open at once.
+     *
+     * @return The maximum number of connections.
+     */
+    public int getMaxConnections() { return _maxConnections; }
+
+
+    /**
+     * Set the number of connections that may be open at once.
+     *
+     * @param maxConnections The maximum number of connections.
+     *
+     * @return This object.
+     */
+    public ConnectionLimits setMaxConnections(final int maxConnections) {
+        _maxConnections = (int) nonNegative(maxConnections);
+        return this;
+    }
+
+
+    /**
+     * Get the number of connections a single client IP address may have open
+     * at once.
+     *
+     * @return The maximum number of connections.
+     */
+    public int getMaxConnectionsPerAddress() {
+        return _maxConnectionsPerAddress;
+    }
+
+
+    /**
+     * Set the number of connections a single client IP address may have open
+     * at once.
+     *
+     * @param maxConnections The maximum number of connections.
+     *
+     * @return This object.
+     */
+    public ConnectionLimits setMaxConnectionsPerAddress(
+                                                final int maxConnections) {
+        _maxConnectionsPerAddress = (int) nonNegative(maxConnections);
+        return this;
+    }
+
+
+    private static long nonNegative(final long value) {
+        if (value<0) {
+            throw new IllegalArgumentException("Limit may not be negative.");
+        }
+        return value;
+    }
+}
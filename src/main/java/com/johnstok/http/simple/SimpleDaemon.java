@@ -25,6 +25,7 @@ import java.net.InetSocketAddress;
 import org.simpleframework.http.Request;
 import org.simpleframework.http.Response;
 import org.simpleframework.http.core.Container;
+import org.simpleframework.http.core.ContainerServer;
 import org.simpleframework.transport.connect.Connection;
 import org.simpleframework.transport.connect.SocketConnection;
 import com.johnstok.http.engine.Dispatcher;
@@ -41,9 +42,18 @@ public class SimpleDaemon
     implements
         Container, Server {
 
+    /** The number of worker threads used unless another is specified. */
+    public static final int DEFAULT_WORKERS = 8;
+
     private       Connection        _connection;
     private final Handler           _handler;
+    private final ConnectionLimits  _limits;
+    private final Warmup            _warmup;
+    private final int               _workers;
+    private       ConnectionGuard   _guard;
     private       InetSocketAddress _address;
+    private volatile boolean        _ready;
+    private volatile int            _warmupFailures;
 
 
     /**
@@ -52,17 +62,104 @@ public class SimpleDaemon
      * @param handler
      */
     public SimpleDaemon(final Handler handler) {
+        this(handler, null);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param handler The handler that processes requests.
+     * @param limits  The limits applied to connections; NULL for none.
+     */
+    public SimpleDaemon(final Handler handler, final ConnectionLimits limits) {
+        this(handler, limits, null);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param handler The handler that processes requests.
+     * @param limits  The limits applied to connections; NULL for none.
+     * @param warmup  The traffic sent before the daemon is ready; NULL for none.
+     */
+    public SimpleDaemon(final Handler handler,
+                        final ConnectionLimits limits,
+                        final Warmup warmup) {
+        this(handler, limits, warmup, DEFAULT_WORKERS);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * <p>Each request occupies a worker thread until its handler returns.
+     * Handlers that park requests, such as
+     * {@link com.johnstok.http.ext.BatchingHandler}, need at least as many
+     * workers as requests they park at once.
+     *
+     * @param handler The handler that processes requests.
+     * @param limits  The limits applied to connections; NULL for none.
+     * @param warmup  The traffic sent before the daemon is ready; NULL for none.
+     * @param workers The number of threads that run the handler.
+     */
+    public SimpleDaemon(final Handler handler,
+                        final ConnectionLimits limits,
+                        final Warmup warmup,
+                        final int workers) {
+        if (workers<1) {
+            throw new IllegalArgumentException("Workers must be positive.");
+        }
         _handler = handler;
+        _limits = limits;
+        _warmup = warmup;
+        _workers = workers;
+    }
+
+
+    /**
+     * Determine whether the daemon is ready to receive traffic.
+     *
+     * <p>The daemon is ready once {@link #startup(InetSocketAddress)} has
+     * finished sending any warmup traffic, until it is shut down.
+     *
+     * @return True if the daemon is ready; false otherwise.
+     */
+    public boolean isReady() {
+        return _ready;
+    }
+
+
+    /**
+     * Get the number of warmup requests that failed during the last startup.
+     *
+     * @return The number of failed requests.
+     */
+    public int getWarmupFailures() {
+        return _warmupFailures;
     }
 
 
     /** {@inheritDoc} */
     @Override
     public void handle(final Request request, final Response response) {
+        final ConnectionGuard guard = _guard;
+        final ConnectionGuard.Tracked connection =
+            (null==guard)
+                ? null
+                : guard.requestStarted(request.getClientAddress());
         try {
-            _handler.handle(
-                new SimpleRequest(request, _address),
-                new SimpleResponse(response));
+            if (null!=guard && guard.isLastRequest(connection)) {
+                response.set("Connection", "close");
+            }
+            if (isReadinessCheck(request)) {
+                reportReadiness(response);
+            } else {
+                _handler.handle(
+                    new SimpleRequest(request, _address),
+                    new SimpleResponse(response));
+            }
 
         } catch (final IOException e) {
             e.printStackTrace(); // FIXME: WTF.
@@ -73,6 +170,9 @@ public class SimpleDaemon
             } catch (final IOException e) {
                 e.printStackTrace(); // FIXME: WTF.
             }
+            if (null!=guard) {
+                guard.requestFinished(connection);
+            }
         }
     }
 
@@ -83,8 +183,16 @@ public class SimpleDaemon
         // FIXME: Check address is not null.
         if (null==_connection) {
             _address = address;
-            _connection = new SocketConnection(this);
+            final ContainerServer server = new ContainerServer(this, _workers);
+            if (null==_limits) {
+                _connection = new SocketConnection(server);
+            } else {
+                _guard = new ConnectionGuard(server, _limits);
+                _connection = new SocketConnection(_guard);
+            }
             _connection.connect(address);
+            _warmupFailures = (null==_warmup) ? 0 : _warmup.run(address);
+            _ready = true;
         }
     }
 
@@ -93,9 +201,33 @@ public class SimpleDaemon
     @Override
     public void shutdown() throws IOException {
         if (null!=_connection) {
+            _ready = false;
             _connection.close();
             _connection = null;
+            _guard = null;
             _address = null;
         }
     }
+
+
+    private boolean isReadinessCheck(final Request request) {
+        final String readinessPath =
+            (null==_warmup) ? null : _warmup.getReadinessPath();
+        return
+            null!=readinessPath
+            && readinessPath.equals(request.getPath().getPath());
+    }
+
+
+    private void reportReadiness(final Response response) {
+        if (_ready) {
+            response.setCode(200);
+            response.setText("OK");
+        } else {
+            response.setCode(503);
+            response.setText("Service Unavailable");
+        }
+        response.set("Content-Length", "0");
+        response.set("Cache-Control", "no-cache");
+    }
 }
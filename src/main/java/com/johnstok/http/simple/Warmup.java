@@ -0,0 +1,263 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of wm4j.
+ *
+ * wm4j is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * wm4j is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with wm4j. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.simple;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Synthetic traffic sent to a {@link SimpleDaemon} before it reports ready.
+ *
+ * <p>Each configured request is sent over loopback, through the daemon's real
+ * connection and handler, once per iteration. This gives the JIT a chance to
+ * compile the hot request path before production traffic arrives. Failed
+ * requests, including those that time out or receive an error (4xx or 5xx)
+ * response, are counted and reported but do not prevent the daemon becoming
+ * ready.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class Warmup {
+
+    private final List<Exchange> _exchanges  = new ArrayList<Exchange>();
+    private       int            _iterations = 1;
+    private       int            _timeout    = 10000;
+    private       String         _readinessPath;
+
+
+    /**
+     * Add a request without a body.
+     *
+     * @param method The request method.
+     * @param uri    The request URI: a path and, optionally, a query.
+     *
+     * @return This object.
+     */
+    public Warmup add(final String method, final String uri) {
+        return add(
+            method, uri, Collections.<String, String>emptyMap(), null);
+    }
+
+
+    /**
+     * Add a request.
+     *
+     * @param method  The request method.
+     * @param uri     The request URI: a path and, optionally, a query.
+     * @param headers The request headers.
+     * @param body    The request body; NULL for none.
+     *
+     * @return This object.
+     */
+    public Warmup add(final String method,
+                      final String uri,
+                      final Map<String, String> headers,
+                      final byte[] body) {
+        if (null==method || null==uri || null==headers) {
+            throw new IllegalArgumentException("Arguments may not be null.");
+        }
+        if (!uri.startsWith("/")) {
+            throw new IllegalArgumentException("URI must start with '/'.");
+        }
+        _exchanges.add(
+            new Exchange(
+                method,
+                uri,
+                new LinkedHashMap<String, String>(headers),
+                (null==body) ? null : body.clone()));
+        return this;
+    }
+
+
+    /**
+     * Set the number of times each request is sent.
+     *
+     * @param iterations The number of iterations.
+     *
+     * @return This object.
+     */
+    public Warmup setIterations(final int iterations) {
+        if (iterations<0) {
+            throw new IllegalArgumentException("Iterations may not be negative.");
+        }
+        _iterations = iterations;
+        return this;
+    }
+
+
+    /**
+     * Set the time allowed to connect for, and then to wait for each read of,
+     * a single warmup request.
+     *
+     * <p>A request that exceeds it counts as a failure, so a hung handler
+     * cannot stop the daemon becoming ready. The default is 10 seconds.
+     *
+     * @param timeout The timeout in milliseconds; must be positive.
+     *
+     * @return This object.
+     */
+    public Warmup setTimeout(final int timeout) {
+        if (timeout<=0) {
+            throw new IllegalArgumentException("Timeout must be positive.");
+        }
+        _timeout = timeout;
+        return this;
+    }
+
+
+    /**
+     * Get the path at which the daemon reports its readiness.
+     *
+     * @return The path, or NULL if readiness is not reported over HTTP.
+     */
+    public String getReadinessPath() { return _readinessPath; }
+
+
+    /**
+     * Set the path at which the daemon reports its readiness.
+     *
+     * <p>Requests for this path are answered by the daemon itself, with
+     * {@code 200} once warmup has finished and {@code 503} before then.
+     *
+     * @param readinessPath The path; NULL to disable.
+     *
+     * @return This object.
+     */
+    public Warmup setReadinessPath(final String readinessPath) {
+        _readinessPath = readinessPath;
+        return this;
+    }
+
+
+    /**
+     * Send the warmup traffic.
+     *
+     * @param address The address the daemon is listening on.
+     *
+     * @return The number of requests that failed.
+     */
+    int run(final InetSocketAddress address) {
+        final InetAddress host =
+            (address.getAddress().isAnyLocalAddress())
+                ? InetAddress.getLoopbackAddress()
+                : address.getAddress();
+
+        int failures = 0;
+        IOException lastFailure = null;
+        for (int i=0; i<_iterations; i++) {
+            for (final Exchange exchange : _exchanges) {
+                try {
+                    exchange.send(host, address.getPort(), _timeout);
+                } catch (final IOException e) {
+                    failures++;
+                    lastFailure = e;
+                }
+            }
+        }
+        if (failures>0) { // FIXME: Log.
+            System.err.println(
+                "Warmup: "+failures+" request(s) failed; last error: "
+                + lastFailure);
+        }
+        return failures;
+    }
+
+
+    /**
+     * A single synthetic request.
+     */
+    private static final class Exchange {
+
+        private final String              _method;
+        private final String              _uri;
+        private final Map<String, String> _headers;
+        private final byte[]              _body;
+
+
+        Exchange(final String method,
+                 final String uri,
+                 final Map<String, String> headers,
+                 final byte[] body) {
+            _method = method;
+            _uri = uri;
+            _headers = headers;
+            _body = body;
+        }
+
+
+        void send(final InetAddress host,
+                  final int port,
+                  final int timeout) throws IOException {
+            final URL url =
+                new URL("http", host.getHostAddress(), port, _uri);
+            final HttpURLConnection c =
+                (HttpURLConnection) url.openConnection();
+            try {
+                c.setConnectTimeout(timeout);
+                c.setReadTimeout(timeout);
+                c.setRequestMethod(_method);
+                for (final Map.Entry<String, String> h : _headers.entrySet()) {
+                    c.setRequestProperty(h.getKey(), h.getValue());
+                }
+                if (null!=_body) {
+                    c.setDoOutput(true);
+                    c.setFixedLengthStreamingMode(_body.length);
+                    final OutputStream out = c.getOutputStream();
+                    try {
+                        out.write(_body);
+                    } finally {
+                        out.close();
+                    }
+                }
+
+                // Read the whole response so the handler's write path runs too.
+                final int code = c.getResponseCode();
+                final InputStream in =
+                    (code>=400) ? c.getErrorStream() : c.getInputStream();
+                if (null!=in) {
+                    try {
+                        final byte[] buffer = new byte[4096];
+                        while (in.read(buffer)>=0) { /* Discard. */ }
+                    } finally {
+                        in.close();
+                    }
+                }
+                if (code>=400) {
+                    throw new IOException(
+                        _method+" "+_uri+" returned "+code+".");
+                }
+
+            } finally {
+                c.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of wm4j.
+ *
+ * wm4j is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * wm4j is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with wm4j. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.ext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import com.johnstok.http.sync.Request;
+import com.johnstok.http.sync.Response;
+
+
+/**
+ * Tests for the {@link BatchingHandler} class.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class BatchingHandlerTest {
+
+    private final ExecutorService _clients = Executors.newCachedThreadPool();
+    private final List<Integer>   _batches =
+        Collections.synchronizedList(new ArrayList<Integer>());
+
+    /** Echoes each request's URI into its own response. */
+    private final BatchHandler _echo = new BatchHandler() {
+        @Override
+        public void handle(final List<Request> requests,
+                           final List<Response> responses) throws IOException {
+            _batches.add(Integer.valueOf(requests.size()));
+            for (int i=0; i<requests.size(); i++) {
+                responses.get(i).getBody().write(
+                    requests.get(i).getRequestUri().getBytes("UTF-8"));
+            }
+        }
+    };
+
+
+    @Test
+    public void concurrentRequestsShareOneBatch() throws Exception {
+
+        // ARRANGE
+        final BatchingHandler handler = new BatchingHandler(_echo, 4, 10000);
+        final long start = System.currentTimeMillis();
+
+        // ACT
+        final List<Future<String>> bodies = new ArrayList<Future<String>>();
+        for (int i=0; i<4; i++) {
+            bodies.add(send(handler, "/"+i));
+        }
+
+        // ASSERT
+        for (int i=0; i<4; i++) {
+            Assert.assertEquals("/"+i, bodies.get(i).get(5, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(
+            Collections.singletonList(Integer.valueOf(4)), _batches);
+        Assert.assertTrue( // Closed by size, not by the 10s delay.
+            System.currentTimeMillis()-start<5000);
+    }
+
+
+    @Test
+    public void partialBatchRunsWhenDelayExpires() throws Exception {
+
+        // ARRANGE
+        final BatchingHandler handler = new BatchingHandler(_echo, 100, 100);
+        final long start = System.currentTimeMillis();
+
+        // ACT
+        final String body = send(handler, "/a").get(5, TimeUnit.SECONDS);
+
+        // ASSERT
+        Assert.assertEquals("/a", body);
+        Assert.assertEquals(
+            Collections.singletonList(Integer.valueOf(1)), _batches);
+        Assert.assertTrue(System.currentTimeMillis()-start>=90);
+    }
+
+
+    @Test
+    public void failureReachesEveryRequestInBatch() throws Exception {
+
+        // ARRANGE
+        final IOException failure = new IOException("Backend down.");
+        final BatchingHandler handler = new BatchingHandler(
+            new BatchHandler() {
+                @Override
+                public void handle(final List<Request> requests,
+                                   final List<Response> responses)
+                                                        throws IOException {
+                    _batches.add(Integer.valueOf(requests.size()));
+                    throw failure;
+                }
+            },
+            3,
+            10000);
+
+        // ACT
+        final List<Future<String>> bodies = new ArrayList<Future<String>>();
+        for (int i=0; i<3; i++) {
+            bodies.add(send(handler, "/"+i));
+        }
+
+        // ASSERT
+        for (final Future<String> body : bodies) {
+            try {
+                body.get(5, TimeUnit.SECONDS);
+                Assert.fail("Expected the batch failure.");
+            } catch (final ExecutionException e) {
+                Assert.assertSame(failure, e.getCause());
+            }
+        }
+        Assert.assertEquals(
+            Collections.singletonList(Integer.valueOf(3)), _batches);
+    }
+
+
+    /** Tear down. */
+    @After
+    public void tearDown() {
+        _clients.shutdownNow();
+    }
+
+
+    private Future<String> send(final BatchingHandler handler,
+                                final String uri) {
+        return _clients.submit(new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                final BufferedResponse response = new BufferedResponse();
+                handler.handle(new StubRequest("POST", uri), response);
+                return
+                    ((ByteArrayOutputStream) response.getBody())
+                        .toString("UTF-8");
+            }
+        });
+    }
+}
@@ -0,0 +1,276 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of wm4j.
+ *
+ * wm4j is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * wm4j is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with wm4j. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.ext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import com.johnstok.http.sync.Handler;
+import com.johnstok.http.sync.Request;
+import com.johnstok.http.sync.Response;
+
+
+/**
+ * Tests for the {@link SingleFlightHandler} class.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class SingleFlightHandlerTest {
+
+    private static final int CLIENTS = 8;
+
+    private final ExecutorService _clients = Executors.newCachedThreadPool();
+    private final AtomicInteger   _calls   = new AtomicInteger();
+    private final CountDownLatch  _release = new CountDownLatch(1);
+    private       CountDownLatch  _keyed;
+
+
+    @Test
+    public void identicalRequestsShareOneCall() throws Exception {
+
+        // ARRANGE
+        final Handler handler = new SingleFlightHandler(
+            new Handler() {
+                @Override
+                public void handle(final Request request,
+                                   final Response response) throws IOException {
+                    _calls.incrementAndGet();
+                    awaitRelease();
+                    response.setHeader("Content-Type", "text/plain");
+                    response.getBody().write("shared".getBytes("UTF-8"));
+                }
+            },
+            "Accept");
+
+        // ACT
+        final List<Future<BufferedResponse>> responses =
+            sendConcurrently(handler, "text/plain");
+
+        // ASSERT
+        for (final Future<BufferedResponse> response : responses) {
+            final BufferedResponse r = response.get(5, TimeUnit.SECONDS);
+            Assert.assertEquals("shared", body(r));
+            Assert.assertEquals("text/plain", r.getHeader("Content-Type"));
+        }
+        Assert.assertEquals(1, _calls.get());
+    }
+
+
+    @Test
+    public void differentKeyHeadersAreNotCollapsed() throws Exception {
+
+        // ARRANGE
+        final CountDownLatch entered = new CountDownLatch(2);
+        final Handler handler = new SingleFlightHandler(
+            new Handler() {
+                @Override
+                public void handle(final Request request,
+                                   final Response response) throws IOException {
+                    _calls.incrementAndGet();
+                    entered.countDown();
+                    try {
+                        // Only returns promptly if both requests get here.
+                        entered.await(5, TimeUnit.SECONDS);
+                    } catch (final InterruptedException e) {
+                        throw new IOException(e.toString());
+                    }
+                    response.getBody().write(
+                        request.getHeaders().get("Accept").get(0)
+                            .getBytes("UTF-8"));
+                }
+            },
+            "Accept");
+
+        // ACT
+        _keyed = new CountDownLatch(2);
+        final Future<BufferedResponse> json  = send(handler, "application/json");
+        final Future<BufferedResponse> plain = send(handler, "text/plain");
+
+        // ASSERT
+        Assert.assertEquals(
+            "application/json", body(json.get(10, TimeUnit.SECONDS)));
+        Assert.assertEquals(
+            "text/plain", body(plain.get(10, TimeUnit.SECONDS)));
+        Assert.assertEquals(2, _calls.get());
+        Assert.assertEquals(0, entered.getCount());
+    }
+
+
+    @Test
+    public void requestsWithUnkeyedCredentialsAreNotCollapsed()
+                                                        throws Exception {
+
+        // ARRANGE
+        final CountDownLatch entered = new CountDownLatch(2);
+        final Handler handler = new SingleFlightHandler(
+            new Handler() {
+                @Override
+                public void handle(final Request request,
+                                   final Response response) throws IOException {
+                    _calls.incrementAndGet();
+                    entered.countDown();
+                    try {
+                        // Only returns promptly if both requests get here.
+                        entered.await(5, TimeUnit.SECONDS);
+                    } catch (final InterruptedException e) {
+                        throw new IOException(e.toString());
+                    }
+                    response.getBody().write(
+                        request.getHeaders().get("Authorization").get(0)
+                            .getBytes("UTF-8"));
+                }
+            });
+
+        // ACT
+        final Future<BufferedResponse> alice = authorized(handler, "alice");
+        final Future<BufferedResponse> bob   = authorized(handler, "bob");
+
+        // ASSERT
+        Assert.assertEquals("alice", body(alice.get(10, TimeUnit.SECONDS)));
+        Assert.assertEquals("bob", body(bob.get(10, TimeUnit.SECONDS)));
+        Assert.assertEquals(2, _calls.get());
+        Assert.assertEquals(0, entered.getCount());
+    }
+
+
+    @Test
+    public void privateResponsesAreNotReplayed() throws Exception {
+
+        // ARRANGE
+        final Handler handler = new SingleFlightHandler(
+            new Handler() {
+                @Override
+                public void handle(final Request request,
+                                   final Response response) throws IOException {
+                    final int call = _calls.incrementAndGet();
+                    awaitRelease();
+                    response.setHeader("Set-Cookie", "session="+call);
+                }
+            },
+            "Accept");
+
+        // ACT
+        final List<Future<BufferedResponse>> responses =
+            sendConcurrently(handler, "text/plain");
+
+        // ASSERT
+        final Set<String> cookies = new HashSet<String>();
+        for (final Future<BufferedResponse> response : responses) {
+            cookies.add(
+                response.get(5, TimeUnit.SECONDS).getHeader("Set-Cookie"));
+        }
+        Assert.assertEquals(CLIENTS, cookies.size());
+        Assert.assertEquals(CLIENTS, _calls.get());
+    }
+
+
+    /** Tear down. */
+    @After
+    public void tearDown() {
+        _release.countDown();
+        _clients.shutdownNow();
+    }
+
+
+    /*
+     * Start CLIENTS identical requests and release the delegate once they
+     * have all computed their keys, i.e. once they are all in flight.
+     */
+    private List<Future<BufferedResponse>> sendConcurrently(
+                                                final Handler handler,
+                                                final String accept)
+                                                    throws InterruptedException {
+        _keyed = new CountDownLatch(CLIENTS);
+        final List<Future<BufferedResponse>> responses =
+            new ArrayList<Future<BufferedResponse>>();
+        for (int i=0; i<CLIENTS; i++) {
+            responses.add(send(handler, accept));
+        }
+        Assert.assertTrue(_keyed.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100); // Let the last client reach the wait.
+        _release.countDown();
+        return responses;
+    }
+
+
+    private Future<BufferedResponse> send(final Handler handler,
+                                          final String accept) {
+        return _clients.submit(new Callable<BufferedResponse>() {
+            @Override
+            public BufferedResponse call() throws IOException {
+                final BufferedResponse response = new BufferedResponse();
+                handler.handle(
+                    new StubRequest("GET", "/popular") {
+                        @Override
+                        public String getRequestUri() {
+                            _keyed.countDown(); // Only read to build the key.
+                            return super.getRequestUri();
+                        }
+                    }.header("Accept", accept),
+                    response);
+                return response;
+            }
+        });
+    }
+
+
+    private Future<BufferedResponse> authorized(final Handler handler,
+                                                final String credentials) {
+        return _clients.submit(new Callable<BufferedResponse>() {
+            @Override
+            public BufferedResponse call() throws IOException {
+                final BufferedResponse response = new BufferedResponse();
+                handler.handle(
+                    new StubRequest("GET", "/account")
+                        .header("Authorization", credentials),
+                    response);
+                return response;
+            }
+        });
+    }
+
+
+    private void awaitRelease() throws IOException {
+        try {
+            _release.await(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+
+    private static String body(final BufferedResponse response)
+                                                        throws IOException {
+        return ((ByteArrayOutputStream) response.getBody()).toString("UTF-8");
+    }
+}
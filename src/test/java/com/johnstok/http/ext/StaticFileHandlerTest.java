@@ -0,0 +1,275 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of wm4j.
+ *
+ * wm4j is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * wm4j is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with wm4j. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.ext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests for the {@link StaticFileHandler} class.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class StaticFileHandlerTest {
+
+    private Path              _dir;
+    private Path              _root;
+    private StaticFileHandler _handler;
+
+
+    /** Set up. */
+    @Before
+    public void setUp() throws IOException {
+        _dir  = Files.createTempDirectory("static");
+        _root = Files.createDirectory(_dir.resolve("root"));
+        write(_root.resolve("a.txt"), "Hello world.");
+        write(_dir.resolve("secret.txt"), "Secret.");
+        _handler = new StaticFileHandler(_root, 16, 1<<20);
+    }
+
+
+    @Test
+    public void getFile() throws IOException {
+
+        // ACT
+        final BufferedResponse r = get("/a.txt?ignored=true");
+
+        // ASSERT
+        Assert.assertEquals(200, r.getStatusCode());
+        Assert.assertEquals("Hello world.", body(r));
+        Assert.assertEquals("12", r.getHeader("Content-Length"));
+        Assert.assertEquals("text/plain", r.getHeader("Content-Type"));
+        Assert.assertNotNull(r.getHeader("ETag"));
+        Assert.assertNull(r.getHeader("Vary"));
+    }
+
+
+    @Test
+    public void getUnmappedFile() throws IOException {
+
+        // ARRANGE
+        _handler.close();
+        _handler = new StaticFileHandler(_root, 16, 0);
+
+        // ACT
+        final BufferedResponse r = get("/a.txt");
+
+        // ASSERT
+        Assert.assertEquals(200, r.getStatusCode());
+        Assert.assertEquals("Hello world.", body(r));
+    }
+
+
+    @Test
+    public void matchingEtagIsNotModified() throws IOException {
+
+        // ARRANGE
+        final String etag = get("/a.txt").getHeader("ETag");
+
+        // ACT
+        final BufferedResponse r = new BufferedResponse();
+        _handler.handle(
+            new StubRequest("GET", "/a.txt").header("If-None-Match", etag),
+            r);
+
+        // ASSERT
+        Assert.assertEquals(304, r.getStatusCode());
+        Assert.assertEquals("", body(r));
+        Assert.assertEquals(etag, r.getHeader("ETag"));
+    }
+
+
+    @Test
+    public void precompressedSiblingIsServed() throws IOException {
+
+        // ARRANGE
+        write(_root.resolve("a.txt.gz"), "GZIP");
+        write(_root.resolve("a.txt.br"), "BROTLI");
+
+        // ACT
+        final BufferedResponse gzip = new BufferedResponse();
+        _handler.handle(
+            new StubRequest("GET", "/a.txt")
+                .header("Accept-Encoding", "gzip, br;q=0"),
+            gzip);
+        final BufferedResponse identity = get("/a.txt");
+
+        // ASSERT
+        Assert.assertEquals("GZIP", body(gzip));
+        Assert.assertEquals("gzip", gzip.getHeader("Content-Encoding"));
+        Assert.assertEquals("Accept-Encoding", gzip.getHeader("Vary"));
+        Assert.assertEquals("4", gzip.getHeader("Content-Length"));
+
+        Assert.assertEquals("Hello world.", body(identity));
+        Assert.assertNull(identity.getHeader("Content-Encoding"));
+        Assert.assertEquals("Accept-Encoding", identity.getHeader("Vary"));
+        Assert.assertFalse(
+            gzip.getHeader("ETag").equals(identity.getHeader("ETag")));
+    }
+
+
+    @Test
+    public void traversalIsNotFound() throws IOException {
+        Assert.assertEquals(404, get("/../secret.txt").getStatusCode());
+        Assert.assertEquals(404, get("/%2e%2e/secret.txt").getStatusCode());
+        Assert.assertEquals(404, get("/missing.txt").getStatusCode());
+        Assert.assertEquals(404, get("/").getStatusCode());
+    }
+
+
+    @Test
+    public void headHasNoBody() throws IOException {
+
+        // ACT
+        final BufferedResponse r = new BufferedResponse();
+        _handler.handle(new StubRequest("HEAD", "/a.txt"), r);
+
+        // ASSERT
+        Assert.assertEquals(200, r.getStatusCode());
+        Assert.assertEquals("12", r.getHeader("Content-Length"));
+        Assert.assertEquals("", body(r));
+    }
+
+
+    @Test
+    public void otherMethodsAreNotAllowed() throws IOException {
+
+        // ACT
+        final BufferedResponse r = new BufferedResponse();
+        _handler.handle(new StubRequest("POST", "/a.txt"), r);
+
+        // ASSERT
+        Assert.assertEquals(405, r.getStatusCode());
+        Assert.assertEquals("GET, HEAD", r.getHeader("Allow"));
+    }
+
+
+    @Test
+    public void replacedFileIsReloaded() throws Exception {
+
+        // ARRANGE
+        Assert.assertEquals("Hello world.", body(get("/a.txt")));
+
+        // ACT - replace the file the way a deploy would.
+        final Path staged = _dir.resolve("a.txt.tmp");
+        write(staged, "Goodbye, world.");
+        Files.move(
+            staged,
+            _root.resolve("a.txt"),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+
+        // ASSERT - some watch services poll, so allow a while.
+        final long deadline = System.currentTimeMillis()+15000;
+        String body = body(get("/a.txt"));
+        while (!"Goodbye, world.".equals(body)
+               && System.currentTimeMillis()<deadline) {
+            Assert.assertEquals("Hello world.", body); // Never a mixture.
+            Thread.sleep(50);
+            body = body(get("/a.txt"));
+        }
+        Assert.assertEquals("Goodbye, world.", body);
+    }
+
+
+    @Test
+    public void fileRewrittenInPlaceIsNotServedFromStaleMapping()
+                                                        throws IOException {
+
+        // ARRANGE
+        _handler.close();
+        _handler = new StaticFileHandler(_root, 16, 1<<20, false);
+        Assert.assertEquals("Hello world.", body(get("/a.txt")));
+
+        // ACT - truncates the mapped file, with no watcher to notice.
+        write(_root.resolve("a.txt"), "Bye.");
+        final BufferedResponse r = get("/a.txt");
+
+        // ASSERT
+        Assert.assertEquals("Bye.", body(r));
+        Assert.assertEquals("4", r.getHeader("Content-Length"));
+    }
+
+
+    @Test
+    public void siblingLinkedOutsideRootIsIgnored() throws IOException {
+
+        // ARRANGE
+        Files.createSymbolicLink(
+            _root.resolve("a.txt.gz"), _dir.resolve("secret.txt"));
+
+        // ACT
+        final BufferedResponse r = new BufferedResponse();
+        _handler.handle(
+            new StubRequest("GET", "/a.txt").header("Accept-Encoding", "gzip"),
+            r);
+
+        // ASSERT
+        Assert.assertEquals("Hello world.", body(r));
+        Assert.assertNull(r.getHeader("Content-Encoding"));
+    }
+
+
+    /** Tear down. */
+    @After
+    public void tearDown() throws IOException {
+        _handler.close();
+        delete(_dir.toFile());
+    }
+
+
+    private BufferedResponse get(final String uri) throws IOException {
+        final BufferedResponse response = new BufferedResponse();
+        _handler.handle(new StubRequest("GET", uri), response);
+        return response;
+    }
+
+
+    private static String body(final BufferedResponse response)
+                                                        throws IOException {
+        return ((ByteArrayOutputStream) response.getBody()).toString("UTF-8");
+    }
+
+
+    private static void write(final Path path,
+                              final String content) throws IOException {
+        Files.write(path, content.getBytes("UTF-8"));
+    }
+
+
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (null!=children) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
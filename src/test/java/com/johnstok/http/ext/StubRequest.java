@@ -0,0 +1,113 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of wm4j.
+ *
+ * wm4j is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * wm4j is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with wm4j. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.ext;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.johnstok.http.sync.AbstractRequest;
+
+
+/**
+ * An in-memory request for handler tests.
+ *
+ * @author Keith Webster Johnston.
+ */
+class StubRequest
+    extends
+        AbstractRequest {
+
+    private static final InetSocketAddress LOCALHOST =
+        new InetSocketAddress("localhost", 4444);                  //$NON-NLS-1$
+
+    private final String                    _method;
+    private final String                    _uri;
+    private final Map<String, List<String>> _headers =
+        new HashMap<String, List<String>>();
+
+
+    /**
+     * Constructor.
+     *
+     * @param method The request method.
+     * @param uri    The request URI.
+     */
+    StubRequest(final String method, final String uri) {
+        super(LOCALHOST, Charset.forName("UTF-8"));                //$NON-NLS-1$
+        _method = method;
+        _uri = uri;
+    }
+
+
+    /**
+     * Add a request header.
+     *
+     * @param name   The header name.
+     * @param values The header values.
+     *
+     * @return This request.
+     */
+    StubRequest header(final String name, final String... values) {
+        _headers.put(name, Arrays.asList(values));
+        return this;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public String getRequestUri() { return _uri; }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isConfidential() { return false; }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public String getMethod() { return _method; }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public String getVersion() { return "1.1"; }                  //$NON-NLS-1$
+
+
+    /** {@inheritDoc} */
+    @Override
+    public InetSocketAddress getClientAddress() { return LOCALHOST; }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public Map<String, List<String>> getHeaders() { return _headers; }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public InputStream getBody() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+}
@@ -47,8 +47,8 @@ public abstract class ServerTest<T extends Server> {
     public void getRequest() throws IOException {
 
         // ARRANGE
-        Server s = createServer(new HelloWorldHandler());
-        s.startup(LOCALHOST);
+        _server = createServer(new HelloWorldHandler());
+        _server.startup(LOCALHOST);
 
         // ACT
         String body = SynchronousClient.get("/");
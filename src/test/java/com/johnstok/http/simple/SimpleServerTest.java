@@ -19,7 +19,37 @@
  *---------------------------------------------------------------------------*/
 package com.johnstok.http.simple;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import com.johnstok.http.ext.BatchHandler;
+import com.johnstok.http.ext.BatchingHandler;
+import com.johnstok.http.ext.HelloWorldHandler;
 import com.johnstok.http.sync.Handler;
+import com.johnstok.http.sync.Request;
+import com.johnstok.http.sync.Response;
 
 
 /**
@@ -31,9 +61,452 @@ public class SimpleServerTest
     extends
         ServerTest<SimpleDaemon> {
 
+    private static final String STATUS = "status-line";          //$NON-NLS-1$
+
+    private final List<Socket> _sockets = new ArrayList<Socket>();
+
+
+    @Test
+    public void batchLargerThanDefaultWorkersFills() throws Exception {
+
+        // ARRANGE
+        final int clients = SimpleDaemon.DEFAULT_WORKERS+4;
+        final List<Integer> batches =
+            Collections.synchronizedList(new ArrayList<Integer>());
+        _server = new SimpleDaemon(
+            new BatchingHandler(
+                new BatchHandler() {
+                    @Override
+                    public void handle(final List<Request> requests,
+                                       final List<Response> responses)
+                                                        throws IOException {
+                        batches.add(Integer.valueOf(requests.size()));
+                        for (int i=0; i<requests.size(); i++) {
+                            responses.get(i).getBody().write(
+                                requests.get(i).getRequestUri()
+                                    .getBytes("UTF-8"));
+                        }
+                    }
+                },
+                clients,
+                10000),
+            null,
+            null,
+            clients);
+        _server.startup(LOCALHOST);
+        final ExecutorService pool = Executors.newFixedThreadPool(clients);
+        final long start = System.currentTimeMillis();
+
+        try {
+            // ACT
+            final List<Future<String>> bodies = new ArrayList<Future<String>>();
+            for (int i=0; i<clients; i++) {
+                final String path = "/"+i;
+                bodies.add(pool.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return body(path);
+                    }
+                }));
+            }
+
+            // ASSERT
+            for (int i=0; i<clients; i++) {
+                Assert.assertEquals(
+                    "/"+i, bodies.get(i).get(5, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals(
+                Collections.singletonList(Integer.valueOf(clients)), batches);
+            Assert.assertTrue( // Filled, rather than timed out.
+                System.currentTimeMillis()-start<5000);
+
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+
+    @Test
+    public void connectionOverAddressLimitIsClosed() throws IOException {
+
+        // ARRANGE
+        start(new ConnectionLimits().setMaxConnectionsPerAddress(1));
+        final Socket first = connect();
+        Assert.assertTrue(get(first).get(STATUS).contains(" 200 "));
+
+        // ACT
+        final Socket second = connect();
+
+        // ASSERT
+        assertClosed(second);
+        Assert.assertTrue(get(first).get(STATUS).contains(" 200 "));
+    }
+
+
+    @Test
+    public void connectionOverGlobalLimitIsClosed() throws IOException {
+
+        // ARRANGE
+        start(new ConnectionLimits().setMaxConnections(1));
+        final Socket first = connect();
+        Assert.assertTrue(get(first).get(STATUS).contains(" 200 "));
+
+        // ACT
+        final Socket second = connect();
+
+        // ASSERT
+        assertClosed(second);
+        Assert.assertTrue(get(first).get(STATUS).contains(" 200 "));
+    }
+
+
+    @Test
+    public void silentConnectionIsClosedAfterHeaderTimeout()
+                                                        throws IOException {
+
+        // ARRANGE
+        start(new ConnectionLimits().setHeaderTimeout(200));
+        final long start = System.currentTimeMillis();
+
+        // ACT
+        final Socket socket = connect();
+
+        // ASSERT
+        assertClosed(socket);
+        Assert.assertTrue(System.currentTimeMillis()-start>=150);
+    }
+
+
+    @Test
+    public void idleConnectionIsClosedAfterIdleTimeout() throws IOException {
+
+        // ARRANGE
+        start(new ConnectionLimits().setIdleTimeout(200));
+        final Socket socket = connect();
+        Assert.assertTrue(get(socket).get(STATUS).contains(" 200 "));
+        final long idleSince = System.currentTimeMillis();
+
+        // ACT
+        assertClosed(socket);
+
+        // ASSERT
+        Assert.assertTrue(System.currentTimeMillis()-idleSince>=150);
+    }
+
+
+    @Test
+    public void lastRequestOnConnectionIsMarkedClose() throws IOException {
+
+        // ARRANGE
+        start(new ConnectionLimits().setMaxRequestsPerConnection(2));
+        final Socket socket = connect();
+
+        // ACT
+        final Map<String, String> first  = get(socket);
+        final Map<String, String> second = get(socket);
+
+        // ASSERT
+        Assert.assertFalse(
+            "close".equalsIgnoreCase(first.get("connection")));
+        Assert.assertTrue(
+            "close".equalsIgnoreCase(second.get("connection")));
+        assertClosed(socket);
+    }
+
+
+    @Test
+    public void warmupRequestsReachHandlerBeforeReady() throws IOException {
+
+        // ARRANGE
+        final AtomicInteger calls = new AtomicInteger();
+        _server = new SimpleDaemon(
+            new Handler() {
+                @Override
+                public void handle(final Request request,
+                                   final Response response) {
+                    calls.incrementAndGet();
+                }
+            },
+            null,
+            new Warmup()
+                .add("GET", "/a")
+                .add("POST",
+                     "/b",
+                     Collections.singletonMap("Content-Type", "text/plain"),
+                     "body".getBytes("UTF-8"))
+                .setIterations(5)
+                .setReadinessPath("/ready"));
+        Assert.assertFalse(_server.isReady());
+
+        // ACT
+        _server.startup(LOCALHOST);
+
+        // ASSERT
+        Assert.assertEquals(10, calls.get());
+        Assert.assertEquals(0, _server.getWarmupFailures());
+        Assert.assertTrue(_server.isReady());
+        Assert.assertEquals(200, status("/ready"));
+        Assert.assertEquals(10, calls.get()); // Answered by the daemon.
+    }
+
+
+    @Test
+    public void notReadyWhileWarmupRuns() throws Exception {
+
+        // ARRANGE
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        _server = new SimpleDaemon(
+            blockingHandler(entered, release),
+            null,
+            new Warmup().add("GET", "/").setReadinessPath("/ready"));
+        final ExecutorService starter = Executors.newSingleThreadExecutor();
+
+        try {
+            final Future<?> startup = starter.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    _server.startup(LOCALHOST);
+                    return null;
+                }
+            });
+            Assert.assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+            // ACT
+            final int during = status("/ready");
+            release.countDown();
+            startup.get(5, TimeUnit.SECONDS);
+            final int after = status("/ready");
+
+            // ASSERT
+            Assert.assertEquals(503, during);
+            Assert.assertEquals(200, after);
+            Assert.assertTrue(_server.isReady());
+
+        } finally {
+            release.countDown();
+            starter.shutdownNow();
+        }
+    }
+
+
+    @Test
+    public void hungWarmupRequestTimesOut() throws Exception {
+
+        // ARRANGE
+        final CountDownLatch release = new CountDownLatch(1);
+        _server = new SimpleDaemon(
+            blockingHandler(new CountDownLatch(1), release),
+            null,
+            new Warmup().add("GET", "/").setTimeout(200));
+
+        try {
+            // ACT
+            _server.startup(LOCALHOST);
+
+            // ASSERT
+            Assert.assertTrue(_server.isReady());
+            Assert.assertEquals(1, _server.getWarmupFailures());
+
+        } finally {
+            release.countDown();
+        }
+    }
+
+
+    @Test
+    public void warmupErrorResponsesAreCountedAsFailures() throws Exception {
+
+        // ARRANGE
+        final AtomicInteger handled = new AtomicInteger();
+        _server = new SimpleDaemon(
+            new Handler() {
+                @Override
+                public void handle(final Request request,
+                                   final Response response) {
+                    handled.incrementAndGet();
+                    response.setStatus(500, "Internal Server Error");
+                }
+            },
+            null,
+            new Warmup().add("GET", "/").setIterations(3));
+
+        // ACT
+        _server.startup(LOCALHOST);
+
+        // ASSERT
+        Assert.assertEquals(3, handled.get());
+        Assert.assertEquals(3, _server.getWarmupFailures());
+        Assert.assertTrue(_server.isReady());
+    }
+
+
+    /** Close client sockets. */
+    @After
+    public void closeSockets() {
+        for (final Socket socket : _sockets) {
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                System.err.println("Error closing socket: "+e);   //$NON-NLS-1$
+            }
+        }
+    }
+
+
     /** {@inheritDoc} */
     @Override
     protected SimpleDaemon createServer(final Handler handler) {
         return new SimpleDaemon(handler);
     }
+
+
+    private void start(final ConnectionLimits limits) throws IOException {
+        _server = new SimpleDaemon(new HelloWorldHandler(), limits);
+        _server.startup(LOCALHOST);
+    }
+
+
+    private Socket connect() throws IOException {
+        final Socket socket = new Socket();
+        _sockets.add(socket);
+        socket.connect(LOCALHOST, 5000);
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+
+    /*
+     * Send a keep-alive GET and read the whole response. Returns the headers,
+     * with lower-case names, plus the status line.
+     */
+    private static Map<String, String> get(final Socket socket)
+                                                        throws IOException {
+        final OutputStream out = socket.getOutputStream();
+        out.write(
+            "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                .getBytes("US-ASCII"));                            //$NON-NLS-1$
+        out.flush();
+
+        final InputStream in = socket.getInputStream();
+        final Map<String, String> headers = new HashMap<String, String>();
+        headers.put(STATUS, readLine(in));
+        for (String line=readLine(in); line.length()>0; line=readLine(in)) {
+            final int colon = line.indexOf(':');
+            headers.put(
+                line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH),
+                line.substring(colon+1).trim());
+        }
+
+        if (headers.containsKey("content-length")) {
+            skip(in, Integer.parseInt(headers.get("content-length")));
+        } else if ("chunked".equalsIgnoreCase(
+                       headers.get("transfer-encoding"))) {
+            while (true) {
+                final String size = readLine(in).split(";")[0].trim();
+                final int length  = Integer.parseInt(size, 16);
+                if (0==length) {
+                    while (readLine(in).length()>0) { /* Skip trailers. */ }
+                    break;
+                }
+                skip(in, length);
+                readLine(in);
+            }
+        }
+        return headers;
+    }
+
+
+    private static String readLine(final InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        for (int c=in.read(); '\n'!=c; c=in.read()) {
+            if (c<0) {
+                throw new EOFException("Connection closed mid-response.");
+            } else if ('\r'!=c) {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+
+    private static void skip(final InputStream in,
+                             final int length) throws IOException {
+        for (int i=0; i<length; i++) {
+            if (in.read()<0) {
+                throw new EOFException("Connection closed mid-body.");
+            }
+        }
+    }
+
+
+    private static void assertClosed(final Socket socket) {
+        try {
+            Assert.assertEquals(-1, socket.getInputStream().read());
+        } catch (final SocketTimeoutException e) {
+            Assert.fail("Connection was not closed.");
+        } catch (final IOException e) {
+            return; // Reset by the server: also closed.
+        }
+    }
+
+
+    private static Handler blockingHandler(final CountDownLatch entered,
+                                           final CountDownLatch release) {
+        return new Handler() {
+            @Override
+            public void handle(final Request request,
+                               final Response response) throws IOException {
+                entered.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+            }
+        };
+    }
+
+
+    private static int status(final String path) throws IOException {
+        final HttpURLConnection c =
+            (HttpURLConnection) new URL(
+                "http",
+                LOCALHOST.getHostName(),
+                LOCALHOST.getPort(),
+                path).openConnection();
+        try {
+            c.setConnectTimeout(5000);
+            c.setReadTimeout(5000);
+            return c.getResponseCode();
+        } finally {
+            c.disconnect();
+        }
+    }
+
+
+    private static String body(final String path) throws IOException {
+        final HttpURLConnection c =
+            (HttpURLConnection) new URL(
+                "http",
+                LOCALHOST.getHostName(),
+                LOCALHOST.getPort(),
+                path).openConnection();
+        try {
+            c.setConnectTimeout(5000);
+            c.setReadTimeout(5000);
+            final InputStream in = c.getInputStream();
+            try {
+                final ByteArrayOutputStream body = new ByteArrayOutputStream();
+                for (int b=in.read(); b>=0; b=in.read()) {
+                    body.write(b);
+                }
+                return body.toString("UTF-8");
+            } finally {
+                in.close();
+            }
+        } finally {
+            c.disconnect();
+        }
+    }
 }